@@ -0,0 +1,163 @@
+package com.njmd.zfms.converter;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintWriter;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * 定时视频格式转换客户端的本地管理接口,只监听127.0.0.1,
+ * 使用telnet连接之后每行输入一条命令,不需要重启程序即可调整正在运行的客户端.
+ * <pre>
+ * status                  查看当前的运行状态和参数
+ * pause                   暂停获取新的转换任务,正在进行的转换会继续完成
+ * resume                  恢复获取新的转换任务
+ * workers N               修改同时进行转换的工作线程数,有吞吐量配置时修改当前生效的配置
+ * set KEY VALUE           修改converter.*、interval.*和profile.*参数
+ * priority FILE_ID N      调整文件记录的优先级,数值越大越先转换,0表示恢复默认
+ * cancel FILE_ID          取消文件记录的转换
+ * reload                  重新读取conf/application.properties
+ * eta [FILE_ID]           查看最近一次预测的转换完成时间
+ * quit                    断开连接
+ * </pre>
+ */
+public class AdminServer extends Thread{
+	private static Log logger= LogFactory.getLog(AdminServer.class);
+
+	//连接之后长时间没有输入命令则自动断开(单位毫秒)
+	private static final int SO_TIMEOUT=5*60*1000;
+
+	private Client client=null;
+	private int port;
+	private ServerSocket serverSocket=null;
+
+	public AdminServer(Client client,int port){
+		super("AdminServer");
+		this.client=client;
+		this.port=port;
+		setDaemon(true);
+	}
+
+	/**
+	 * 在127.0.0.1上监听管理端口
+	 * @return 监听失败时返回false,此时客户端照常运行但不提供管理接口
+	 */
+	public boolean open(){
+		try {
+			serverSocket=new ServerSocket(port, 5, InetAddress.getByName("127.0.0.1"));
+			return true;
+		} catch (IOException e) {
+			logger.error("本地管理接口启动失败,请确认admin.port的端口"+port+"是否被占用...");
+			return false;
+		}
+	}
+
+	/**
+	 * 关闭管理端口
+	 */
+	public void close(){
+		if(null!=serverSocket){
+			try{ serverSocket.close(); }catch(Exception e){}
+		}
+	}
+
+	@Override
+	public void run() {
+		while(!serverSocket.isClosed()){
+			Socket socket=null;
+			try {
+				socket=serverSocket.accept();
+				socket.setSoTimeout(SO_TIMEOUT);
+				handle(socket);
+			} catch (IOException e) {
+				if(!serverSocket.isClosed())
+					logger.error("本地管理接口处理连接失败:"+e.getMessage());
+			} catch (RuntimeException e) {
+				//不能因为一次连接出错就停止管理接口
+				logger.error("本地管理接口处理连接失败!", e);
+			}finally{
+				if(null!=socket)
+					try{ socket.close(); }catch(Exception e){}
+			}
+		}
+	}
+
+	/**
+	 * 逐行读取并执行命令,直到连接断开或者输入quit
+	 */
+	private void handle(Socket socket) throws IOException{
+		BufferedReader in=new BufferedReader(new InputStreamReader(socket.getInputStream()));
+		PrintWriter out=new PrintWriter(socket.getOutputStream(), true);
+		out.println("\"执法记录仪\"管理系统之定时视频格式转换客户端,输入help查看支持的命令");
+		String line=null;
+		while((line=in.readLine())!=null){
+			line=line.trim();
+			if(line.length()==0){
+				continue;
+			}
+			if("quit".equals(line)){
+				break;
+			}
+			try{
+				out.println(execute(line));
+			}catch(RuntimeException e){
+				logger.error("本地管理接口执行命令["+line+"]失败!", e);
+				out.println("ERR 执行命令失败:"+e);
+			}
+		}
+	}
+
+	/**
+	 * 执行一条命令
+	 * @return 返回给管理员的结果,成功以OK开头,失败以ERR开头
+	 */
+	String execute(String line){
+		String[] args=line.split("\\s+");
+		String cmd=args[0];
+		String error=null;
+
+		if("help".equals(cmd)){
+			return "OK status|pause|resume|workers N|set KEY VALUE|priority FILE_ID N|cancel FILE_ID|reload|eta [FILE_ID]|quit";
+		}else if("status".equals(cmd)){
+			return "OK\n"+client.status();
+		}else if("pause".equals(cmd)){
+			client.pause();
+		}else if("resume".equals(cmd)){
+			client.resume();
+		}else if("workers".equals(cmd) && args.length==2){
+			error=client.setWorkers(args[1]);
+		}else if("set".equals(cmd) && args.length==3){
+			error=client.setTunable(args[1], args[2]);
+		}else if("priority".equals(cmd) && args.length==3){
+			if(!Client.isNumber(args[2],0,Integer.MAX_VALUE)){
+				return "ERR 优先级必须为0~"+Integer.MAX_VALUE+"之间的数字...";
+			}
+			error=client.prioritize(args[1], Integer.valueOf(args[2]));
+		}else if("cancel".equals(cmd) && args.length==2){
+			error=client.cancel(args[1]);
+		}else if("reload".equals(cmd)){
+			error=client.reload();
+		}else if("eta".equals(cmd) && args.length<=2){
+			StringBuffer sb=new StringBuffer();
+			error=client.eta(args.length==2?args[1]:null, sb);
+			if(null==error){
+				return "OK\n"+sb;
+			}
+		}else{
+			return "ERR 无法识别的命令["+line+"],输入help查看支持的命令";
+		}
+
+		if(null!=error){
+			logger.error("本地管理接口执行命令["+line+"]失败:"+error);
+			return "ERR "+error;
+		}
+		logger.info("本地管理接口执行命令["+line+"]成功...");
+		return "OK";
+	}
+}
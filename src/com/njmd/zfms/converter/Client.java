@@ -14,14 +14,28 @@ import java.nio.channels.FileChannel;
 import java.nio.channels.FileLock;
 import java.sql.Connection;
 import java.sql.DriverManager;
+import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.Collections;
+import java.util.Date;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.PriorityQueue;
 import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -40,6 +54,10 @@ public class Client{
 	private Thread shutdownHook=null;
 	private ScheduledExecutorService  executor =null;
 	private ConverterThread t=null;
+	private ThreadPoolExecutor workerPool=null;
+	private AdminServer adminServer=null;
+	
+	private static final String CONFIG_FILE="conf/application.properties";
 	
 	private static final String JDBC_DRIVERNAME="jdbc.driverName";
 	private static final String JDBC_URL="jdbc.url";
@@ -57,8 +75,28 @@ public class Client{
 	private static final String CONVERTER_QSCALE_MIDDLE="converter.qscale.middle";
 	private static final String CONVERTER_QSCALE_LOW="converter.qscale.low";
 	private static final String CONVERTER_RESOLUTION="converter.resolution";
+	private static final String CONVERTER_WORKERS="converter.workers";
+	
+	private static final String ADMIN_PORT="admin.port";
+	
+	private static final String COSTMODEL_INTERVAL="costmodel.interval";
+	private static final String COSTMODEL_ETACOLUMN="costmodel.etaColumn";
+	
+	private static final String PROFILE_NAMES="profile.names";
+	private static final String PROFILE_PREFIX="profile.";
 	
 	private static Pattern resolutionPattern = Pattern.compile("^(\\d*)\\*(\\d*)$");
+	private static Pattern fileIdPattern = Pattern.compile("^[\\w\\-]+$");
+	private static Pattern timePattern = Pattern.compile("^(\\d{1,2}):(\\d{2})$");
+	private static Pattern numberPattern = Pattern.compile("^-?\\d+$");
+	private static Pattern durationPattern = Pattern.compile("^(\\d+):(\\d+):(\\d+(\\.\\d+)?)$");
+	
+	//时间间隔的上限(单位分钟),换算成秒之后不能超出int的范围
+	private static final int MAX_INTERVAL=Integer.MAX_VALUE/60;
+	//工作线程数和ffmpeg线程数的上限
+	private static final int MAX_WORKERS=256;
+	//每次预测最多读取视频信息的文件记录数,其余的在之后的预测中读取
+	private static final int FORECAST_PROBES=20;
 	
 	//数据库驱动
 	private String jdbcDriverName=null;
@@ -76,14 +114,70 @@ public class Client{
 	private String ffmpegPath=null;
 	
 	//运行过程中连接数据库失败之后等待多长时间之后再执行转换任务(单位分钟)
-	private Integer intervalFailsRetry=null;
-	//本次转换任务完成之后与下次运行转换任务之后的等待时间(单位分钟)
-	private Integer intervalEachTime=null;
+	private volatile Integer intervalFailsRetry=null;
+	//没有需要转换的文件记录时与下次运行转换任务之间的等待时间(单位分钟)
+	private volatile Integer intervalEachTime=null;
+	
+	private volatile Integer converterQscaleHigh=10;
+	private volatile Integer converterQscaleMiddle=10;
+	private volatile Integer converterQscaleLow=10;
+	private volatile String converterResolution="640*360";
+	//同时进行视频转换的工作线程数
+	private volatile Integer converterWorkers=1;
 	
-	private Integer converterQscaleHigh=10;
-	private Integer converterQscaleMiddle=10;
-	private Integer converterQscaleLow=10;
-	private String converterResolution="640*360";
+	//按开始时间排列的吞吐量配置,为空时不按时间段调整
+	private volatile List<ThroughputProfile> profiles=new ArrayList<ThroughputProfile>();
+	//当前生效的吞吐量配置
+	private volatile ThroughputProfile activeProfile=null;
+	
+	//本地管理接口的端口(只监听127.0.0.1),为0时不启用
+	private Integer adminPort=0;
+	
+	//预测转换完成时间的间隔(单位分钟)
+	private Integer costModelInterval=5;
+	//保存预测转换完成时间的字段(DATE类型),为空时不写回文件记录
+	private String costModelEtaColumn="";
+	
+	//根据以往转换记录学习的转换耗时
+	private CostModel costModel=new CostModel(new File(".costmodel"));
+	//待转换文件记录的视频信息,避免每次预测都重新读取
+	private final Map<String,Map<String,String>> videoInfos=new ConcurrentHashMap<String,Map<String,String>>();
+	//正在进行转换的文件记录的开始时间
+	private final Map<String,Long> runningStarted=new ConcurrentHashMap<String,Long>();
+	//正在进行转换的文件记录的预测转换耗时(秒)
+	private final Map<String,Double> runningCosts=new ConcurrentHashMap<String,Double>();
+	//最近一次预测的各文件记录的转换完成时间,按转换顺序排列
+	private volatile Map<String,Date> fileEtas=new LinkedHashMap<String,Date>();
+	//已经写回文件记录的预测完成时间,没有变化时不再重复更新
+	private final Map<String,Date> writtenEtas=new ConcurrentHashMap<String,Date>();
+	//最近一次预测的全部转换完成时间
+	private volatile Date drainEta=null;
+	//最近一次预测的时间
+	private volatile Date forecastTime=null;
+	
+	//是否暂停获取新的转换任务,正在进行的转换不受影响
+	private volatile boolean paused=false;
+	//管理接口修改参数之后唤醒正在等待的转换线程
+	private volatile boolean wakeUp=false;
+	
+	//正在进行转换的文件记录
+	private final Set<String> runningFiles=Collections.newSetFromMap(new ConcurrentHashMap<String,Boolean>());
+	//正在进行转换的文件记录所对应的ffmpeg进程
+	private final Map<String,Process> runningProcesses=new ConcurrentHashMap<String,Process>();
+	//正在进行转换的文件记录的输出文件路径,无法获取进程号时用于查找ffmpeg进程
+	private final Map<String,String> runningDestPaths=new ConcurrentHashMap<String,String>();
+	//管理员调整过优先级的文件记录,数值越大越先转换
+	private final Map<String,Integer> priorities=new ConcurrentHashMap<String,Integer>();
+	//管理员取消转换的文件记录,本次运行期间不再转换
+	private final Set<String> cancelledFiles=Collections.newSetFromMap(new ConcurrentHashMap<String,Boolean>());
+	//转换失败的文件记录及失败时间,在interval.eachTime分钟之内不再重试
+	private final Map<String,Long> failedFiles=new ConcurrentHashMap<String,Long>();
+	//读写.bak备份文件使用的锁
+	private final Object bakLock=new Object();
+	//已经转换完成、但更新数据库失败的文件记录,重新更新成功之前不能再次转换
+	private final Set<String> pendingUpdates=Collections.newSetFromMap(new ConcurrentHashMap<String,Boolean>());
+	//调整ffmpeg进程优先级使用的锁,保证按切换的顺序执行
+	private final Object reniceLock=new Object();
 	
 	/**
 	 * 程序运行的过程中会生成.lock锁文件,当新程序实例运行时会试着获取.lock文件的锁,
@@ -125,9 +219,10 @@ public class Client{
 		//读取配置文件
 		Properties props=new Properties();
 		try{
-			File file=new File("conf/application.properties");
+			File file=new File(CONFIG_FILE);
 			InputStream in=(InputStream) new FileInputStream(file);
 			props.load(in);
+			in.close();
 			logger.info("系统成功找到[conf/application.properties]配置文件...");
 		}catch(IOException e){
 			logger.error("系统未找到[conf/application.properties]配置文件,程序自动退出...");
@@ -175,89 +270,636 @@ public class Client{
 			System.exit(0);
 		}
 		
-		String tmpConverterQscaleHigh=props.getProperty(CONVERTER_QSCALE_HIGH,"10").trim();
-		if("".equals(tmpConverterQscaleHigh)){
-			logger.error("读取配置文件内容出错,程序自动退出,请您确认是否设置了converter.qscale.high的值...");
+		String error=loadTunables(props);
+		if(null!=error){
+			logger.error("读取配置文件内容出错,程序自动退出,"+error);
 			System.exit(0);
 		}
+		applyProfile(true);
 		
-		if(!isDigits(tmpConverterQscaleHigh)){
-			logger.error("读取配置文件内容出错,程序自动退出,请您确认converter.qscale.high的值是否为数字...");
+		String tmpAdminPort=props.getProperty(ADMIN_PORT,"0").trim();
+		if(!isNumber(tmpAdminPort,0,65535)){
+			logger.error("读取配置文件内容出错,程序自动退出,请您确认admin.port的值是否为0~65535之间的数字...");
 			System.exit(0);
 		}
 		
-		converterQscaleHigh=Integer.valueOf(tmpConverterQscaleHigh);
+		adminPort=Integer.valueOf(tmpAdminPort);
 		
-		String tmpConverterQscaleMiddle=props.getProperty(CONVERTER_QSCALE_MIDDLE,"10").trim();
-		if("".equals(tmpConverterQscaleMiddle)){
-			logger.error("读取配置文件内容出错,程序自动退出,请您确认是否设置了converter.qscale.middle的值...");
+		String tmpCostModelInterval=props.getProperty(COSTMODEL_INTERVAL,"5").trim();
+		if(!isNumber(tmpCostModelInterval,1,MAX_INTERVAL)){
+			logger.error("读取配置文件内容出错,程序自动退出,请您确认costmodel.interval的值是否为1~"+MAX_INTERVAL+"之间的数字...");
 			System.exit(0);
 		}
 		
-		if(!isDigits(tmpConverterQscaleMiddle)){
-			logger.error("读取配置文件内容出错,程序自动退出,请您确认converter.qscale.middle的值是否为数字...");
+		costModelInterval=Integer.valueOf(tmpCostModelInterval);
+		
+		costModelEtaColumn=props.getProperty(COSTMODEL_ETACOLUMN,"").trim();
+		if(!fileIdPattern.matcher(costModelEtaColumn).find() && !"".equals(costModelEtaColumn)){
+			logger.error("读取配置文件内容出错,程序自动退出,请您确认costmodel.etaColumn的值是否为file_upload_info表的字段名...");
 			System.exit(0);
 		}
 		
-		converterQscaleMiddle=Integer.valueOf(tmpConverterQscaleMiddle);
+		costModel.load();
 		
+		logger.info("系统读取[conf/application.properties]配置文件信息成功...");
+		
+	}
+
+	/**
+	 * 读取可以在运行过程中调整的参数(转换质量、分辨率、时间间隔、工作线程数)并进行验证,
+	 * 全部验证通过之后才会生效,否则保持原来的参数不变.
+	 * @param props
+	 * @return 验证失败时返回错误信息,成功时返回null
+	 */
+	synchronized String loadTunables(Properties props){
+		String tmpConverterQscaleHigh=props.getProperty(CONVERTER_QSCALE_HIGH,"10").trim();
+		if("".equals(tmpConverterQscaleHigh)){
+			return "请您确认是否设置了converter.qscale.high的值...";
+		}
+
+		if(!isNumber(tmpConverterQscaleHigh,0,Integer.MAX_VALUE)){
+			return "请您确认converter.qscale.high的值是否为数字...";
+		}
+
+		String tmpConverterQscaleMiddle=props.getProperty(CONVERTER_QSCALE_MIDDLE,"10").trim();
+		if("".equals(tmpConverterQscaleMiddle)){
+			return "请您确认是否设置了converter.qscale.middle的值...";
+		}
+
+		if(!isNumber(tmpConverterQscaleMiddle,0,Integer.MAX_VALUE)){
+			return "请您确认converter.qscale.middle的值是否为数字...";
+		}
+
 		String tmpConverterQscaleLow=props.getProperty(CONVERTER_QSCALE_LOW,"10").trim();
 		if("".equals(tmpConverterQscaleLow)){
-			logger.error("读取配置文件内容出错,程序自动退出,请您确认是否设置了converter.qscale.low的值...");
-			System.exit(0);
+			return "请您确认是否设置了converter.qscale.low的值...";
 		}
-		
-		if(!isDigits(tmpConverterQscaleLow)){
-			logger.error("读取配置文件内容出错,程序自动退出,请您确认converter.qscale.low的值是否为数字...");
-			System.exit(0);
+
+		if(!isNumber(tmpConverterQscaleLow,0,Integer.MAX_VALUE)){
+			return "请您确认converter.qscale.low的值是否为数字...";
 		}
-		
-		converterQscaleLow=Integer.valueOf(tmpConverterQscaleLow);
-		
-		converterResolution=props.getProperty(CONVERTER_RESOLUTION,"640*360").trim();
-		if("".equals(converterResolution)){
-			logger.error("读取配置文件内容出错,程序自动退出,请您确认是否设置了converter.resolution的值...");
-			System.exit(0);
+
+		String tmpConverterResolution=props.getProperty(CONVERTER_RESOLUTION,"640*360").trim();
+		if("".equals(tmpConverterResolution)){
+			return "请您确认是否设置了converter.resolution的值...";
 		}
-		
-		Matcher mat = resolutionPattern.matcher(converterResolution); 
-		boolean find = mat.find();   
-		
-		if(!find){
-			logger.error("读取配置文件内容出错,程序自动退出,请您确认是否设置了converter.resolution的值必须以*分隔，例如640*360...");
-			System.exit(0);
+
+		Matcher mat = resolutionPattern.matcher(tmpConverterResolution);
+		if(!mat.find()){
+			return "请您确认是否设置了converter.resolution的值必须以*分隔，例如640*360...";
 		}
-		
+
+		String tmpConverterWorkers=props.getProperty(CONVERTER_WORKERS,"1").trim();
+		if(!isNumber(tmpConverterWorkers,1,MAX_WORKERS)){
+			return "请您确认converter.workers的值是否为1~"+MAX_WORKERS+"之间的数字...";
+		}
+
 		String tmpIntervalFailsRetry=props.getProperty(INTERVAL_FAILSRETRY,"5").trim();
 		if("".equals(tmpIntervalFailsRetry)){
-			logger.error("读取配置文件内容出错,程序自动退出,请您确认是否设置了interval.failsRetry的值...");
-			System.exit(0);
+			return "请您确认是否设置了interval.failsRetry的值...";
 		}
-		
-		if(!isDigits(tmpIntervalFailsRetry)){
-			logger.error("读取配置文件内容出错,程序自动退出,请您确认interval.failsRetry的值是否为数字...");
-			System.exit(0);
+
+		if(!isNumber(tmpIntervalFailsRetry,0,MAX_INTERVAL)){
+			return "请您确认interval.failsRetry的值是否为0~"+MAX_INTERVAL+"之间的数字...";
 		}
-		
-		intervalFailsRetry=Integer.valueOf(tmpIntervalFailsRetry);
-		
+
 		String tmpIntervalEachTime=props.getProperty(INTERVAL_EACHTIME,"5").trim();
 		if("".equals(tmpIntervalEachTime)){
-			logger.error("读取配置文件内容出错,程序自动退出,请您确认是否设置了interval.eachTime的值...");
-			System.exit(0);
+			return "请您确认是否设置了interval.eachTime的值...";
 		}
-		
-		if(!isDigits(tmpIntervalEachTime)){
-			logger.error("读取配置文件内容出错,程序自动退出,请您确认interval.eachTime的值是否为数字...");
-			System.exit(0);
+
+		if(!isNumber(tmpIntervalEachTime,0,MAX_INTERVAL)){
+			return "请您确认interval.eachTime的值是否为0~"+MAX_INTERVAL+"之间的数字...";
 		}
-		
+
+		List<ThroughputProfile> tmpProfiles=new ArrayList<ThroughputProfile>();
+		String error=loadProfiles(props, tmpConverterWorkers, tmpProfiles);
+		if(null!=error){
+			return error;
+		}
+
+		converterQscaleHigh=Integer.valueOf(tmpConverterQscaleHigh);
+		converterQscaleMiddle=Integer.valueOf(tmpConverterQscaleMiddle);
+		converterQscaleLow=Integer.valueOf(tmpConverterQscaleLow);
+		converterResolution=tmpConverterResolution;
+		converterWorkers=Integer.valueOf(tmpConverterWorkers);
+		intervalFailsRetry=Integer.valueOf(tmpIntervalFailsRetry);
 		intervalEachTime=Integer.valueOf(tmpIntervalEachTime);
-		
-		logger.info("系统读取[conf/application.properties]配置文件信息成功...");
-		
+		profiles=tmpProfiles;
+
+		resizeWorkerPool(currentWorkers());
+		wakeUp=true;
+		return null;
 	}
-	
+
+	/**
+	 * 读取按时间段生效的吞吐量配置,例如:
+	 * <pre>
+	 * profile.names=day,night
+	 * profile.day.start=08:00
+	 * profile.day.workers=1
+	 * profile.day.threads=2
+	 * profile.day.nice=10
+	 * profile.day.ionice=7
+	 * </pre>
+	 * @param props
+	 * @param defaultWorkers 没有设置workers时使用的工作线程数
+	 * @param results 按开始时间排列的吞吐量配置
+	 * @return 验证失败时返回错误信息,成功时返回null
+	 */
+	private String loadProfiles(Properties props,String defaultWorkers,List<ThroughputProfile> results){
+		String names=props.getProperty(PROFILE_NAMES,"").trim();
+		for(String name:names.split(",")){
+			name=name.trim();
+			if("".equals(name)){
+				continue;
+			}
+			String prefix=PROFILE_PREFIX+name+".";
+
+			String tmpStart=props.getProperty(prefix+"start","").trim();
+			Matcher mat = timePattern.matcher(tmpStart);
+			if(!mat.find() || Integer.valueOf(mat.group(1))>23 || Integer.valueOf(mat.group(2))>59){
+				return "请您确认"+prefix+"start的值是否为HH:mm格式的时间,例如08:00...";
+			}
+			int start=Integer.valueOf(mat.group(1))*60+Integer.valueOf(mat.group(2));
+
+			String tmpWorkers=props.getProperty(prefix+"workers",defaultWorkers).trim();
+			if(!isNumber(tmpWorkers,1,MAX_WORKERS)){
+				return "请您确认"+prefix+"workers的值是否为1~"+MAX_WORKERS+"之间的数字...";
+			}
+
+			String tmpThreads=props.getProperty(prefix+"threads","0").trim();
+			if(!isNumber(tmpThreads,0,MAX_WORKERS)){
+				return "请您确认"+prefix+"threads的值是否为数字...";
+			}
+
+			String tmpNice=props.getProperty(prefix+"nice","0").trim();
+			if(!isNumber(tmpNice,-20,19)){
+				return "请您确认"+prefix+"nice的值是否为-20~19之间的数字...";
+			}
+
+			String tmpIonice=props.getProperty(prefix+"ionice","-1").trim();
+			if(!isNumber(tmpIonice,-1,7)){
+				return "请您确认"+prefix+"ionice的值是否为0~7之间的数字,不调整时设置为-1...";
+			}
+
+			results.add(new ThroughputProfile(name, start, Integer.valueOf(tmpWorkers), Integer.valueOf(tmpThreads),
+					Integer.valueOf(tmpNice), Integer.valueOf(tmpIonice)));
+		}
+
+		Collections.sort(results, new java.util.Comparator<ThroughputProfile>(){
+			public int compare(ThroughputProfile o1, ThroughputProfile o2) {
+				return o1.getStart()-o2.getStart();
+			}
+		});
+		return null;
+	}
+
+	/**
+	 * 根据当前时间切换吞吐量配置,新的工作线程数和ffmpeg线程数立即生效,
+	 * 正在运行的ffmpeg进程会按新的配置调整CPU/IO优先级.
+	 * 调整优先级需要执行外部命令,可能耗时较长,因此不在Client的锁内进行.
+	 * @param force 为false时只有生效的配置发生变化才进行切换
+	 */
+	void applyProfile(boolean force){
+		ThroughputProfile profile=switchProfile(force);
+		if(null==profile){
+			return;
+		}
+
+		synchronized(reniceLock){
+			//等待期间已经切换到其他配置时,由后一次切换负责调整
+			if(profile!=activeProfile){
+				return;
+			}
+			Map<String,Process> processes=new HashMap<String,Process>(runningProcesses);
+			logger.info("系统提示:切换到吞吐量配置"+profile+",正在转换的"+processes.size()+"个视频同时调整进程优先级!");
+			for(Map.Entry<String,Process> entry:processes.entrySet()){
+				String destPath=runningDestPaths.get(entry.getKey());
+				ProcessPriority.apply(entry.getValue(), new File(ffmpegPath).getName(), null!=destPath?destPath:"",
+						profile.getNice(), profile.getIonice());
+			}
+		}
+	}
+
+	/**
+	 * 选择当前时间对应的吞吐量配置并调整工作线程数
+	 * @param force 为false时只有生效的配置发生变化才进行切换
+	 * @return 切换之后的吞吐量配置,没有切换或者没有吞吐量配置时返回null
+	 */
+	private synchronized ThroughputProfile switchProfile(boolean force){
+		List<ThroughputProfile> list=profiles;
+		ThroughputProfile profile=null;
+		if(!list.isEmpty()){
+			int now=Calendar.getInstance().get(Calendar.HOUR_OF_DAY)*60+Calendar.getInstance().get(Calendar.MINUTE);
+			//早于第一个配置的开始时间时,沿用前一天最后一个配置
+			profile=list.get(list.size()-1);
+			for(ThroughputProfile p:list){
+				if(p.getStart()<=now){
+					profile=p;
+				}
+			}
+		}
+
+		if(!force && profile==activeProfile){
+			return null;
+		}
+		activeProfile=profile;
+		resizeWorkerPool(currentWorkers());
+		wakeUp=true;
+		return profile;
+	}
+
+	/**
+	 * 当前生效的工作线程数,有吞吐量配置时以吞吐量配置为准
+	 */
+	int currentWorkers(){
+		ThroughputProfile profile=activeProfile;
+		return null!=profile?profile.getWorkers():converterWorkers;
+	}
+
+	/**
+	 * 当前生效的可调整参数
+	 */
+	Properties currentTunables(){
+		Properties props=new Properties();
+		props.setProperty(CONVERTER_QSCALE_HIGH, String.valueOf(converterQscaleHigh));
+		props.setProperty(CONVERTER_QSCALE_MIDDLE, String.valueOf(converterQscaleMiddle));
+		props.setProperty(CONVERTER_QSCALE_LOW, String.valueOf(converterQscaleLow));
+		props.setProperty(CONVERTER_RESOLUTION, converterResolution);
+		props.setProperty(CONVERTER_WORKERS, String.valueOf(converterWorkers));
+		props.setProperty(INTERVAL_FAILSRETRY, String.valueOf(intervalFailsRetry));
+		props.setProperty(INTERVAL_EACHTIME, String.valueOf(intervalEachTime));
+
+		StringBuffer names=new StringBuffer();
+		for(ThroughputProfile profile:profiles){
+			String prefix=PROFILE_PREFIX+profile.getName()+".";
+			props.setProperty(prefix+"start", profile.getStartTime());
+			props.setProperty(prefix+"workers", String.valueOf(profile.getWorkers()));
+			props.setProperty(prefix+"threads", String.valueOf(profile.getThreads()));
+			props.setProperty(prefix+"nice", String.valueOf(profile.getNice()));
+			props.setProperty(prefix+"ionice", String.valueOf(profile.getIonice()));
+			if(names.length()>0)
+				names.append(",");
+			names.append(profile.getName());
+		}
+		props.setProperty(PROFILE_NAMES, names.toString());
+		return props;
+	}
+
+	/**
+	 * 重新读取配置文件中可以在运行过程中调整的参数,数据库、文件服务器和ffmpeg的设置需要重启程序才能生效.
+	 * @return 失败时返回错误信息,成功时返回null
+	 */
+	String reload(){
+		Properties props=new Properties();
+		try{
+			InputStream in=(InputStream) new FileInputStream(new File(CONFIG_FILE));
+			props.load(in);
+			in.close();
+		}catch(IOException e){
+			return "系统未找到[conf/application.properties]配置文件...";
+		}
+
+		String error=loadTunables(props);
+		if(null!=error){
+			return error;
+		}
+		applyProfile(true);
+		logger.info("系统重新读取[conf/application.properties]配置文件信息成功...");
+		return null;
+	}
+
+	/**
+	 * 在运行过程中修改单个可调整参数
+	 * @return 失败时返回错误信息,成功时返回null
+	 */
+	String setTunable(String key,String value){
+		Properties props=currentTunables();
+		if(!props.containsKey(key)){
+			return "参数["+key+"]不支持在运行过程中修改...";
+		}
+		//有吞吐量配置时工作线程数由当前生效的配置决定,修改converter.workers不会生效
+		ThroughputProfile profile=activeProfile;
+		if(CONVERTER_WORKERS.equals(key) && null!=profile){
+			return "当前生效的吞吐量配置为["+profile.getName()+"],请修改"+PROFILE_PREFIX+profile.getName()+".workers或者使用workers命令...";
+		}
+		props.setProperty(key, value);
+
+		String error=loadTunables(props);
+		if(null!=error){
+			return error;
+		}
+		applyProfile(true);
+		logger.info("系统提示:参数["+key+"]已修改为["+value+"]!");
+		return null;
+	}
+
+	/**
+	 * 修改工作线程数,有吞吐量配置时修改当前生效的吞吐量配置
+	 * @return 失败时返回错误信息,成功时返回null
+	 */
+	String setWorkers(String value){
+		ThroughputProfile profile=activeProfile;
+		if(null!=profile){
+			return setTunable(PROFILE_PREFIX+profile.getName()+".workers", value);
+		}
+		return setTunable(CONVERTER_WORKERS, value);
+	}
+
+	/**
+	 * 暂停获取新的转换任务,正在进行的转换会继续完成
+	 */
+	void pause(){
+		paused=true;
+		logger.info("系统提示:已暂停获取新的转换任务!");
+	}
+
+	/**
+	 * 恢复获取新的转换任务
+	 */
+	void resume(){
+		paused=false;
+		wakeUp=true;
+		logger.info("系统提示:已恢复获取新的转换任务!");
+	}
+
+	/**
+	 * 调整文件记录的转换优先级,数值越大越先转换,为0时恢复按上传时间的顺序转换
+	 * @return 失败时返回错误信息,成功时返回null
+	 */
+	String prioritize(String fileId,int priority){
+		if(!fileIdPattern.matcher(fileId).find()){
+			return "文件记录["+fileId+"]的格式不正确...";
+		}
+		if(priority==0){
+			priorities.remove(fileId);
+		}else{
+			priorities.put(fileId, priority);
+		}
+		cancelledFiles.remove(fileId);
+		wakeUp=true;
+		logger.info("系统提示:文件记录["+fileId+"]的转换优先级已调整为["+priority+"]!");
+		return null;
+	}
+
+	/**
+	 * 取消文件记录的转换,如果正在转换则结束对应的ffmpeg进程
+	 * @return 失败时返回错误信息,成功时返回null
+	 */
+	String cancel(String fileId){
+		if(!fileIdPattern.matcher(fileId).find()){
+			return "文件记录["+fileId+"]的格式不正确...";
+		}
+		cancelledFiles.add(fileId);
+		priorities.remove(fileId);
+
+		Process proc=runningProcesses.get(fileId);
+		if(null!=proc){
+			proc.destroy();
+		}
+		logger.info("系统提示:文件记录["+fileId+"]的转换已被取消!");
+		return null;
+	}
+
+	/**
+	 * 当前的运行状态
+	 */
+	String status(){
+		StringBuffer sb=new StringBuffer();
+		sb.append("状态:").append(paused?"已暂停":"运行中").append("\n");
+		sb.append("吞吐量配置:").append(null!=activeProfile?activeProfile.toString():"未设置").append("\n");
+		sb.append("工作线程数:").append(currentWorkers()).append("\n");
+		sb.append("预计全部转换完成时间:").append(null!=drainEta?formatDate(drainEta):"尚未预测").append("\n");
+		sb.append("正在转换的文件记录:").append(runningFiles).append("\n");
+		sb.append("调整过优先级的文件记录:").append(priorities).append("\n");
+		sb.append("已取消的文件记录:").append(cancelledFiles).append("\n");
+		Properties props=currentTunables();
+		for(String key:new java.util.TreeSet<String>(props.stringPropertyNames())){
+			sb.append(key).append("=").append(props.getProperty(key)).append("\n");
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * 最近一次预测的转换完成时间
+	 * @param fileId 为null时返回全部文件记录
+	 * @param sb 预测结果
+	 * @return 失败时返回错误信息,成功时返回null
+	 */
+	String eta(String fileId,StringBuffer sb){
+		if(null==forecastTime){
+			return "尚未进行预测,请稍后再试...";
+		}
+		Map<String,Date> etas=fileEtas;
+		if(null!=fileId){
+			if(!etas.containsKey(fileId)){
+				return "文件记录["+fileId+"]不在待转换的文件记录中...";
+			}
+			sb.append(fileId).append("=").append(formatDate(etas.get(fileId)));
+			return null;
+		}
+		sb.append("预测时间:").append(formatDate(forecastTime)).append(",已统计").append(costModel.samples()).append("条转换记录\n");
+		sb.append("预计全部转换完成时间:").append(formatDate(drainEta)).append("\n");
+		for(Map.Entry<String,Date> entry:etas.entrySet()){
+			sb.append(entry.getKey()).append("=").append(formatDate(entry.getValue())).append("\n");
+		}
+		return null;
+	}
+
+	/**
+	 * 根据转换耗时统计预测正在转换和待转换文件记录的完成时间,
+	 * 按工作线程数模拟依次转换的过程,并将结果写回文件记录.
+	 */
+	void forecast() throws SQLException{
+		Connection conn=null;
+		ResultSet rs=null;
+		try {
+			conn=DriverManager.getConnection(jdbcUrl,jdbcUsername,jdbcPassword);
+			rs=conn.createStatement().executeQuery(
+					"select file_id,file_storage_root,file_save_path from file_upload_info where file_context_path like '%"+fileServerIP+"%' and file_status='C' " +
+								" order by file_upload_time");
+			List<String[]> queue=new ArrayList<String[]>();
+			//正在转换的文件记录,尚未启动ffmpeg时需要读取视频信息预测转换耗时
+			Map<String,String[]> runningRecords=new HashMap<String,String[]>();
+			while(rs.next()){
+				String fileId=rs.getString("file_id");
+				String fileSavePath=rs.getString("file_save_path");
+				String[] record=new String[]{fileId,rs.getString("file_storage_root"),fileSavePath};
+				if(runningFiles.contains(fileId)){
+					runningRecords.put(fileId, record);
+				}else if(!cancelledFiles.contains(fileId) && !pendingUpdates.contains(fileId) && checkContentType(fileSavePath)==0){
+					queue.add(record);
+				}
+			}
+			try { rs.close(); } catch (Exception e) {}
+			rs=null;
+
+			//调整过优先级的文件记录先转换,其余按上传时间的顺序,刚刚转换失败的文件记录在模拟时推迟
+			Collections.sort(queue, new java.util.Comparator<String[]>(){
+				public int compare(String[] o1, String[] o2) {
+					Integer p1=priorities.get(o1[0]);
+					Integer p2=priorities.get(o2[0]);
+					return (null==p2?0:p2)-(null==p1?0:p1);
+				}
+			});
+
+			long now=System.currentTimeMillis();
+			Map<String,Date> etas=new LinkedHashMap<String,Date>();
+			//每个工作线程空闲下来的时间
+			PriorityQueue<Long> slots=new PriorityQueue<Long>();
+			long drain=now;
+			ThroughputProfile profile=activeProfile;
+			//读取视频信息需要启动ffmpeg,待转换的文件记录很多时分几次预测读取,尚未读取的按平均视频时长预测
+			int probes=0;
+			for(String fileId:runningFiles){
+				Long started=runningStarted.get(fileId);
+				Double cost=runningCosts.get(fileId);
+				long finish;
+				if(null!=started && null!=cost){
+					finish=Math.max(now, started+(long)(cost*1000));
+				}else{
+					//已经分配给工作线程但还在读取视频信息,按完整的转换耗时预测
+					Map<String,String> infos=videoInfos.get(fileId);
+					String[] record=runningRecords.get(fileId);
+					if(null==infos && null!=record && probes<FORECAST_PROBES){
+						infos=getVideoInfo(ffmpegPath, record[1]+record[2], profile);
+						videoInfos.put(fileId, infos);
+						probes++;
+					}
+					if(null==infos){
+						infos=new HashMap<String,String>();
+					}
+					finish=now+(long)(costModel.predict(costKey(infos, qscaleFor(infos), profile), parseDuration(infos.get("duration")))*1000);
+				}
+				slots.add(finish);
+				etas.put(fileId, new Date(finish));
+				drain=Math.max(drain, finish);
+			}
+			int workers=currentWorkers();
+			//工作线程数调小之后,正在转换的数量超出工作线程数的部分结束时不会空出工作线程
+			while(slots.size()>workers){
+				slots.poll();
+			}
+			while(slots.size()<workers){
+				slots.add(now);
+			}
+
+			int queueSize=queue.size();
+			while(!queue.isEmpty()){
+				//与转换线程一样,刚刚转换失败的文件记录在interval.eachTime分钟之后才会再次转换
+				long slot=slots.poll();
+				int next=-1;
+				long nextStart=Long.MAX_VALUE;
+				for(int i=0;i<queue.size();i++){
+					long start=Math.max(slot, retryTime(queue.get(i)[0], now));
+					if(start<nextStart){
+						next=i;
+						nextStart=start;
+					}
+					if(start==slot){
+						break;
+					}
+				}
+				String[] record=queue.remove(next);
+				Map<String,String> infos=videoInfos.get(record[0]);
+				if(null==infos && probes<FORECAST_PROBES){
+					infos=getVideoInfo(ffmpegPath, record[1]+record[2], profile);
+					videoInfos.put(record[0], infos);
+					probes++;
+				}
+				if(null==infos){
+					infos=new HashMap<String,String>();
+				}
+				double cost=costModel.predict(costKey(infos, qscaleFor(infos), profile), parseDuration(infos.get("duration")));
+				long finish=nextStart+(long)(cost*1000);
+				slots.add(finish);
+				etas.put(record[0], new Date(finish));
+				drain=Math.max(drain, finish);
+			}
+			videoInfos.keySet().retainAll(etas.keySet());
+
+			fileEtas=etas;
+			drainEta=new Date(drain);
+			forecastTime=new Date(now);
+			logger.info("系统提示:正在转换"+runningFiles.size()+"个文件记录,待转换"+queueSize+"个文件记录,预计在"+formatDate(drainEta)+"全部转换完成"
+					+(paused?"(当前已暂停获取新的转换任务,按立即恢复计算)":"")+"!");
+
+			//将预测的完成时间写回文件记录,字段为DATE类型只精确到秒,与上次写回的时间相同时跳过
+			writtenEtas.keySet().retainAll(etas.keySet());
+			if(!"".equals(costModelEtaColumn)){
+				Map<String,Date> changed=new LinkedHashMap<String,Date>();
+				for(Map.Entry<String,Date> entry:etas.entrySet()){
+					Date written=writtenEtas.get(entry.getKey());
+					if(null==written || written.getTime()/1000!=entry.getValue().getTime()/1000){
+						changed.put(entry.getKey(), entry.getValue());
+					}
+				}
+				if(!changed.isEmpty()){
+					PreparedStatement stmt=conn.prepareStatement("update file_upload_info set "+costModelEtaColumn+"=? where file_id=?");
+					try {
+						for(Map.Entry<String,Date> entry:changed.entrySet()){
+							stmt.setTimestamp(1, new Timestamp(entry.getValue().getTime()/1000*1000));
+							stmt.setString(2, entry.getKey());
+							stmt.addBatch();
+						}
+						stmt.executeBatch();
+					} finally{
+						try{ stmt.close(); }catch(Exception e){}
+					}
+					writtenEtas.putAll(changed);
+				}
+			}
+		} finally{
+			if(null!=rs)
+				try{ rs.close(); }catch(Exception e){}
+			if(null!=conn)
+				try{ conn.close(); }catch(Exception e){}
+		}
+	}
+
+	/**
+	 * 文件记录是否在interval.eachTime分钟之内转换失败过,超过时间的失败记录同时被清除
+	 */
+	private boolean isRecentlyFailed(String fileId){
+		Long failedTime=failedFiles.get(fileId);
+		if(null==failedTime){
+			return false;
+		}
+		if(System.currentTimeMillis()-failedTime<intervalEachTime*60*1000L){
+			return true;
+		}
+		failedFiles.remove(fileId);
+		return false;
+	}
+
+	/**
+	 * 文件记录最早可以再次转换的时间,没有转换失败过时为now
+	 */
+	private long retryTime(String fileId,long now){
+		Long failedTime=failedFiles.get(fileId);
+		if(null==failedTime || !isRecentlyFailed(fileId)){
+			return now;
+		}
+		return failedTime+intervalEachTime*60*1000L;
+	}
+
+	/**
+	 * 调整工作线程池的大小,正在进行的转换不受影响
+	 */
+	private void resizeWorkerPool(int workers){
+		if(null==workerPool){
+			return;
+		}
+		if(workers>workerPool.getMaximumPoolSize()){
+			workerPool.setMaximumPoolSize(workers);
+			workerPool.setCorePoolSize(workers);
+		}else{
+			workerPool.setCorePoolSize(workers);
+			workerPool.setMaximumPoolSize(workers);
+		}
+	}
+
 	/**
 	 * 加载数据库驱动
 	 */
@@ -298,9 +940,20 @@ public class Client{
 	 * 开启视频转换线程
 	 */
 	public void start(){
-		executor=Executors.newSingleThreadScheduledExecutor();
+		workerPool=new ThreadPoolExecutor(currentWorkers(), currentWorkers(), 60L, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>());
+		executor=Executors.newScheduledThreadPool(3);
 		t=new ConverterThread();
 		executor.submit(t);
+		executor.scheduleWithFixedDelay(new ProfileThread(), 1, 1, TimeUnit.MINUTES);
+		executor.scheduleWithFixedDelay(new ForecastThread(), 1, costModelInterval, TimeUnit.MINUTES);
+
+		if(adminPort>0){
+			adminServer=new AdminServer(this, adminPort);
+			if(adminServer.open()){
+				adminServer.start();
+				logger.info("本地管理接口已启动,请使用telnet 127.0.0.1 "+adminPort+"进行连接...");
+			}
+		}
 	}
 	
     public static boolean isDigits(String str) {
@@ -315,6 +968,21 @@ public class Client{
         
         return true;
     }
+    
+    /**
+     * 判断字符串是否为min~max之间的整数,超出int范围的数字同样返回false
+     */
+    public static boolean isNumber(String str,int min,int max) {
+        if (str == null || !numberPattern.matcher(str).find()) {
+            return false;
+        }
+        try {
+            int value=Integer.parseInt(str);
+            return value>=min && value<=max;
+        } catch (NumberFormatException e) {
+            return false;
+        }
+    }
 	
     /**
      * JVM关闭hook线程，当在命令行窗口中按下ctrl+C中断程序执行时，会执行些方法，但是
@@ -328,7 +996,11 @@ public class Client{
 				if(null!=t)
 					t.setStop(true); //设置线程退出标志
 				if(null!=executor)
-					executor.shutdown();	
+					executor.shutdown();
+				if(null!=workerPool)
+					workerPool.shutdown();
+				if(null!=adminServer)
+					adminServer.close();
 				logger.info("系统已退出...");
 			}catch(Throwable ex){
 				ex.printStackTrace();
@@ -344,7 +1016,7 @@ public class Client{
 	protected class ConverterThread  implements Runnable{
 		
 		//是否结束标志
-		private boolean isStop=false;
+		private volatile boolean isStop=false;
 		
 		public void setStop(boolean isStop) {
 			this.isStop = isStop;
@@ -354,7 +1026,16 @@ public class Client{
 		public void run() {
 			boolean flag=true;
 			while(!isStop){
+				//暂停获取新任务或者工作线程都在转换时,等待之后再检查
+				if(paused || runningFiles.size()>=currentWorkers()){
+					try {
+						Thread.sleep(1000);
+					} catch (InterruptedException e1) {
+					}
+					continue;
+				}
 				flag=true;
+				boolean hasRecord=false;
 				logger.info("执行转换任务...");
 			 	
 				Connection conn=null;
@@ -363,73 +1044,94 @@ public class Client{
 					conn=DriverManager.getConnection(jdbcUrl,jdbcUsername,jdbcPassword);
 					
 					//检测是否存在上次更新数据库记录失败记录的备份文件
-					File f=new File(".bak");
-					String s =null;
-					if(f.exists()){
-						try {
-							BufferedReader input = new BufferedReader(new FileReader(f));
-							s= input.readLine();
-							input.close();
-						} catch (Exception e1) {
-						}
-						if(null!=s && s.trim().length()>0){
-							logger.info("系统提示:发现上次执行视频转换之后更新文件记录失败的记录["+s+"],因此先进行更新操作!");
-							try {
-								rs=conn.createStatement().executeQuery(
-						 				"select * from file_upload_info where file_context_path like '%"+fileServerIP+"%' and file_status='C' and file_id='"+s+"'");
-						 		if(rs.next()){
-						 			String fileStorageRoot=rs.getString("file_storage_root");
-				 					
-					 				String fileSavePath=rs.getString("file_save_path");
-					 				
-						 			String filePlayPath=fileSavePath.substring(0,fileSavePath.lastIndexOf("."))+".flv";
-						 			String fileDestPath=fileStorageRoot+filePlayPath;
-						 			
-						 			if(new File(fileDestPath).exists()){
-						 				conn.createStatement().execute("update file_upload_info set file_play_path='"+filePlayPath+"' , file_status='P' where file_id='"+rs.getString("file_id")+"'");
-						 				logger.info("系统提示:更新文件记录["+rs.getString("file_id")+"]为剪辑完成状态的操作执行成功!");
-						 			}else{
-						 				logger.info("系统提示:未发现转换之后的文件,因此不进行任何操作!");
-						 			}
-						 		}else{
-						 			logger.info("系统提示:未发现文件为["+s+"]的记录,因此不进行任何操作!");
-						 		}
-						 	} catch (SQLException e) {
-				 				logger.error("系统提示:更新文件记录["+rs.getString("file_id")+"]为剪辑完成状态的操作执行失败!");
-				 				throw e;
-						 	}finally{
-				 				new File(".bak").delete();
-				 			}
-							try { rs.close(); } catch (Exception e) {}
+					List<String> bakFileIds=takeBak();
+					if(!bakFileIds.isEmpty()){
+						int replayed=0;
+						try{
+							for(String s:bakFileIds){
+								logger.info("系统提示:发现上次执行视频转换之后更新文件记录失败的记录["+s+"],因此先进行更新操作!");
+								try {
+									rs=conn.createStatement().executeQuery(
+							 				"select * from file_upload_info where file_context_path like '%"+fileServerIP+"%' and file_status='C' and file_id='"+s+"'");
+							 		if(rs.next()){
+							 			String fileStorageRoot=rs.getString("file_storage_root");
+					 					
+						 				String fileSavePath=rs.getString("file_save_path");
+						 				
+							 			String filePlayPath=fileSavePath.substring(0,fileSavePath.lastIndexOf("."))+".flv";
+							 			String fileDestPath=fileStorageRoot+filePlayPath;
+							 			
+							 			if(new File(fileDestPath).exists()){
+							 				conn.createStatement().execute("update file_upload_info set file_play_path='"+filePlayPath+"' , file_status='P' where file_id='"+rs.getString("file_id")+"'");
+							 				logger.info("系统提示:更新文件记录["+rs.getString("file_id")+"]为剪辑完成状态的操作执行成功!");
+							 			}else{
+							 				logger.info("系统提示:未发现转换之后的文件,因此不进行任何操作!");
+							 			}
+							 		}else{
+							 			logger.info("系统提示:未发现文件为["+s+"]的记录,因此不进行任何操作!");
+							 		}
+							 	} catch (SQLException e) {
+					 				logger.error("系统提示:更新文件记录["+s+"]为剪辑完成状态的操作执行失败!");
+					 				throw e;
+							 	}
+								try { rs.close(); } catch (Exception e) {}
+								pendingUpdates.remove(s);
+								replayed++;
+							}
+						}finally{
+							//没有更新成功的记录重新写回备份文件,下次再进行更新
+							for(String s:bakFileIds.subList(replayed, bakFileIds.size())){
+								writeBak(s);
+							}
+			 			}
+					}
+					
+					//优先转换管理员调整过优先级的文件记录
+					rs=null;
+					for(String id:prioritizedFiles()){
+						rs=conn.createStatement().executeQuery(
+								"select * from file_upload_info where file_context_path like '%"+fileServerIP+"%' and file_status='C' and file_id='"+id+"'");
+						if(rs.next()){
+							hasRecord=true;
+							break;
 						}
+						//已经不是待转换状态的记录不再需要调整优先级
+						priorities.remove(id);
+						try { rs.close(); } catch (Exception e) {}
+						rs=null;
 					}
 					
 					//进行本次的转换操作
-			 		rs=conn.createStatement().executeQuery(
-			 				"select * from(select * from file_upload_info where file_context_path like '%"+fileServerIP+"%' and file_status='C' " +
-			 							" order by file_upload_time) where rownum<=1 ");
+					if(!hasRecord){
+						//排除的记录在程序中过滤,不使用not in,避免记录过多时超出Oracle的1000个限制;
+						//最早的"排除数+1"条记录中一定包含可以转换的记录(如果有的话)
+						Set<String> excludedFiles=excludedFiles();
+				 		rs=conn.createStatement().executeQuery(
+				 				"select * from(select * from file_upload_info where file_context_path like '%"+fileServerIP+"%' and file_status='C' " +
+				 							" order by file_upload_time) where rownum<="+(excludedFiles.size()+1));
+				 		while(rs.next()){
+				 			if(!excludedFiles.contains(rs.getString("file_id"))){
+				 				hasRecord=true;
+				 				break;
+				 			}
+				 		}
+					}
 			 		
 			 		String fileStorageRoot="";
 			 		String fileSavePath="";
 			 		String fileId="";
-			 		boolean hasRecord=false;
-			 		if(rs.next()){
+			 		if(hasRecord){
 	 					fileStorageRoot=rs.getString("file_storage_root");
 	 					
 		 				fileSavePath=rs.getString("file_save_path");
 		 				
 		 				fileId=rs.getString("file_id");
-		 				
-		 				hasRecord=true;
 			 		}
 			 		try {if(null!=rs){ rs.close(); } } catch (Exception e) {}
 			 		try {if(null!=conn){ conn.close(); } } catch (Exception e) {}
 
 			 		if(hasRecord){
 				 		String fileSourcePath=fileStorageRoot+fileSavePath;
-				 			 
-						String filePlayPath=fileSavePath.substring(0,fileSavePath.lastIndexOf("."))+".flv";
-						String fileDestPath=fileStorageRoot+filePlayPath;
 				 				
 						if(checkContentType(fileSavePath)!=0){
 			 				logger.info("系统提示:将要进行视频转换["+fileSourcePath+"]的文件格式目录本工具暂不支持,因此放弃此视频的转换!");
@@ -442,31 +1144,9 @@ public class Client{
 					 			throw e;
 					 		}
 						}else{
-				 		
-					 		logger.info("系统提示:正在进行视频转换["+fileSourcePath+"]->["+fileDestPath+"],文件记录["+fileId+"]!");
-					 		boolean isOk=makeFlvByMP4(ffmpegPath,fileSourcePath,fileDestPath);
-					 		if(isOk){
-					 			logger.info("系统提示:视频["+fileSourcePath+"]->["+fileDestPath+"]转换结束,文件记录["+fileId+"]!");
-					 			try {
-					 				conn=DriverManager.getConnection(jdbcUrl,jdbcUsername,jdbcPassword);
-									conn.createStatement().execute("update file_upload_info set file_play_path='"+filePlayPath+"' , file_status='P' where file_id='"+fileId+"'");
-									logger.info("系统提示:更新文件记录["+fileId+"]为剪辑完成状态的操作执行成功!");
-						 		} catch (SQLException e) {
-						 			logger.error("系统提示:更新文件记录["+fileId+"]为剪辑完成状态的操作执行失败!");
-						 		
-						 			try {
-						 				File f1=new File(".bak");
-						 				f1.createNewFile();
-						 				BufferedWriter output = new BufferedWriter(new FileWriter(f1));
-						 				output.write(fileId);
-						 				output.close();
-						 			} catch (Exception e1) {
-						 			}
-						 			throw e;
-						 		}
-					 		}else{
-					 			logger.info("系统提示:视频["+fileSavePath+"]->["+filePlayPath+"]转换失败,文件记录["+fileId+"]!");
-					 		}
+							//交给工作线程进行转换,本线程继续获取下一个需要转换的文件记录
+							runningFiles.add(fileId);
+							workerPool.execute(new ConvertTask(fileId, fileStorageRoot, fileSavePath));
 				 		}
 			 		}else{
 			 			logger.info("未发现需要进行视频转换的文件记录!");
@@ -493,10 +1173,12 @@ public class Client{
 					if(null!=rs)
 						try{ rs.close(); }catch(Exception e){}
 				}
-				if(flag){
+				//只有在没有需要转换的文件记录时才等待,管理接口修改参数之后会提前结束等待
+				if(flag && !hasRecord){
+					wakeUp=false;
 					int tmp=intervalEachTime*60;
 					logger.info("本次执行转换任务完成,下次执行转换任务将在"+(tmp/60)+"分钟之后执行...");
-					while(!isStop && tmp>0){
+					while(!isStop && !wakeUp && tmp>0){
 						try {
 							Thread.sleep(1000);
 						} catch (InterruptedException e1) {
@@ -510,9 +1192,175 @@ public class Client{
 				}
 			}
 		}
+		
+		/**
+		 * 按优先级从高到低排列的、还没有开始转换的文件记录
+		 */
+		private List<String> prioritizedFiles(){
+			List<Map.Entry<String,Integer>> entries=new ArrayList<Map.Entry<String,Integer>>(priorities.entrySet());
+			Collections.sort(entries, new java.util.Comparator<Map.Entry<String,Integer>>(){
+				public int compare(Map.Entry<String,Integer> o1, Map.Entry<String,Integer> o2) {
+					return o2.getValue().compareTo(o1.getValue());
+				}
+			});
+			List<String> results=new ArrayList<String>();
+			for(Map.Entry<String,Integer> entry:entries){
+				if(entry.getValue()>0 && !runningFiles.contains(entry.getKey()) && !cancelledFiles.contains(entry.getKey())
+						&& !pendingUpdates.contains(entry.getKey()) && !isRecentlyFailed(entry.getKey())){
+					results.add(entry.getKey());
+				}
+			}
+			return results;
+		}
+		
+		/**
+		 * 正在转换、已取消、等待更新数据库以及刚刚转换失败的文件记录
+		 */
+		private Set<String> excludedFiles(){
+			Set<String> ids=new java.util.HashSet<String>(runningFiles);
+			ids.addAll(cancelledFiles);
+			ids.addAll(pendingUpdates);
+			for(String fileId:failedFiles.keySet()){
+				if(isRecentlyFailed(fileId)){
+					ids.add(fileId);
+				}
+			}
+			return ids;
+		}
 
 	}
 	
+	/**
+	 * 吞吐量配置切换线程,每分钟检查一次当前时间对应的吞吐量配置
+	 */
+	protected class ProfileThread implements Runnable{
+		
+		@Override
+		public void run() {
+			try{
+				applyProfile(false);
+			}catch(Throwable ex){
+				//抛出异常之后定时任务就不会再执行,因此这里只记录日志
+				logger.error("系统提示:切换吞吐量配置失败!", ex);
+			}
+		}
+	}
+	
+	/**
+	 * 转换完成时间预测线程,每隔costmodel.interval分钟预测一次
+	 */
+	protected class ForecastThread implements Runnable{
+		
+		@Override
+		public void run() {
+			try{
+				forecast();
+			}catch(SQLException e){
+				logger.error("系统提示:预测转换完成时间时查询数据库信息失败,请检查数据库服务器的状态!");
+			}catch(Throwable ex){
+				logger.error("系统提示:预测转换完成时间失败!", ex);
+			}
+		}
+	}
+	
+	/**
+	 * 单个文件记录的视频转换任务,由工作线程池执行
+	 */
+	protected class ConvertTask implements Runnable{
+		
+		private String fileId;
+		private String fileStorageRoot;
+		private String fileSavePath;
+		
+		public ConvertTask(String fileId,String fileStorageRoot,String fileSavePath){
+			this.fileId=fileId;
+			this.fileStorageRoot=fileStorageRoot;
+			this.fileSavePath=fileSavePath;
+		}
+		
+		@Override
+		public void run() {
+			String fileSourcePath=fileStorageRoot+fileSavePath;
+			
+			String filePlayPath=fileSavePath.substring(0,fileSavePath.lastIndexOf("."))+".flv";
+			String fileDestPath=fileStorageRoot+filePlayPath;
+			
+			Connection conn=null;
+			try{
+		 		logger.info("系统提示:正在进行视频转换["+fileSourcePath+"]->["+fileDestPath+"],文件记录["+fileId+"]!");
+		 		boolean isOk=makeFlvByMP4(fileId,ffmpegPath,fileSourcePath,fileDestPath);
+		 		if(isOk){
+		 			logger.info("系统提示:视频["+fileSourcePath+"]->["+fileDestPath+"]转换结束,文件记录["+fileId+"]!");
+		 			try {
+		 				conn=DriverManager.getConnection(jdbcUrl,jdbcUsername,jdbcPassword);
+						conn.createStatement().execute("update file_upload_info set file_play_path='"+filePlayPath+"' , file_status='P' where file_id='"+fileId+"'");
+						logger.info("系统提示:更新文件记录["+fileId+"]为剪辑完成状态的操作执行成功!");
+			 		} catch (SQLException e) {
+			 			logger.error("系统提示:更新文件记录["+fileId+"]为剪辑完成状态的操作执行失败!");
+			 			writeBak(fileId);
+			 		}
+		 		}else if(cancelledFiles.contains(fileId)){
+		 			new File(fileDestPath).delete();
+		 			logger.info("系统提示:视频["+fileSavePath+"]->["+filePlayPath+"]的转换已被取消,文件记录["+fileId+"]!");
+		 		}else{
+		 			failedFiles.put(fileId, System.currentTimeMillis());
+		 			logger.info("系统提示:视频["+fileSavePath+"]->["+filePlayPath+"]转换失败,文件记录["+fileId+"]!");
+		 		}
+			}finally{
+				runningFiles.remove(fileId);
+				if(null!=conn)
+					try{ conn.close(); }catch(Exception e){}
+			}
+		}
+	}
+	
+	/**
+	 * 记录更新数据库失败的文件记录,下次执行转换任务时先进行更新操作
+	 */
+	private void writeBak(String fileId){
+		synchronized(bakLock){
+			pendingUpdates.add(fileId);
+			try {
+				File f1=new File(".bak");
+				f1.createNewFile();
+				BufferedWriter output = new BufferedWriter(new FileWriter(f1,true));
+				output.write(fileId);
+				output.newLine();
+				output.close();
+			} catch (Exception e1) {
+			}
+		}
+	}
+	
+	/**
+	 * 读取并删除备份文件中更新数据库失败的文件记录,与writeBak使用同一个锁,
+	 * 避免读取之后、删除之前工作线程写入的记录丢失.
+	 * 读取到的记录仍然保留在pendingUpdates中,直到重新更新成功为止
+	 */
+	private List<String> takeBak(){
+		List<String> bakFileIds=new ArrayList<String>();
+		synchronized(bakLock){
+			File f=new File(".bak");
+			if(!f.exists()){
+				return bakFileIds;
+			}
+			try {
+				BufferedReader input = new BufferedReader(new FileReader(f));
+				String s =null;
+				while((s=input.readLine())!=null){
+					if(s.trim().length()>0)
+						bakFileIds.add(s.trim());
+				}
+				input.close();
+			} catch (Exception e1) {
+			}
+			f.delete();
+			//上次运行遗留的记录同样在重新更新成功之前不能再次转换
+			pendingUpdates.addAll(bakFileIds);
+		}
+		return bakFileIds;
+	}
+	
 	/**
 	 * 主程序入口
 	 */
@@ -534,6 +1382,14 @@ public class Client{
 	 * @return
 	 */
 	public Map<String,String> getVideoInfo(String ffmpegPath,String fileSavePath){
+		return getVideoInfo(ffmpegPath, fileSavePath, null);
+	}
+	
+	/**
+	 * 按吞吐量配置的优先级获取视频的相关信息
+	 * @param profile 为null时不调整优先级
+	 */
+	private Map<String,String> getVideoInfo(String ffmpegPath,String fileSavePath,ThroughputProfile profile){
 		Map<String,String> results=new HashMap<String,String>();
 		
 		List<String> commend = new java.util.ArrayList<String>();
@@ -545,9 +1401,14 @@ public class Client{
 		BufferedReader br=null;
 		
 		try {
-			ProcessBuilder builder = new ProcessBuilder();
-			builder.command(commend);
-			Process proc=builder.start();
+			Process proc=null;
+			if(null!=profile){
+				proc=ProcessPriority.start(commend, fileSavePath, profile.getNice(), profile.getIonice());
+			}else{
+				ProcessBuilder builder = new ProcessBuilder();
+				builder.command(commend);
+				proc=builder.start();
+			}
 			br=new BufferedReader(new InputStreamReader(proc.getErrorStream()));
 			StringBuffer sb=new StringBuffer();
 			String b=null;
@@ -577,8 +1438,10 @@ public class Client{
             m = pattern.matcher(result);
             if (m.find()) {
             	results.put("resolution",m.group(4)+"x"+m.group(5));
+            	results.put("codec",m.group(1).trim().split("\\s+")[0]);
             }else{
             	results.put("resolution","");
+            	results.put("codec","");
             }
 		} catch (Exception e) {
 			e.printStackTrace();
@@ -596,29 +1459,18 @@ public class Client{
 	
 	/**
 	 * 进行视频转换的方法
+	 * @param fileId 文件记录,转换过程中可以通过管理接口取消
 	 * @param ffmpegPath
 	 * @param fileSavePath
 	 * @param filePlayPath
 	 * @return
 	 */
-	public boolean makeFlvByMP4(String ffmpegPath,String fileSavePath,String filePlayPath){
-		int converterQscale=converterQscaleMiddle;
-		
+	public boolean makeFlvByMP4(String fileId,String ffmpegPath,String fileSavePath,String filePlayPath){
 		//获取视频的相关信息
 		Map<String,String> infos=getVideoInfo(ffmpegPath, fileSavePath);
-		//根据分辨率获得ascale
-		if(infos.containsKey("resolution") && infos.get("resolution").length()>0){
-			Matcher mat = resolutionPattern.matcher(infos.get("resolution"));  
-			if(mat.find()){
-				int tmpResolution=Integer.valueOf(mat.group(1));
-				
-				if(tmpResolution>=1440){
-					converterQscale=converterQscaleHigh;
-				}else if(tmpResolution<=848){
-					converterQscale=converterQscaleLow;
-				}
-			}
-		}
+		int converterQscale=qscaleFor(infos);
+		double sourceSeconds=parseDuration(infos.get("duration"));
+		String costKey=null;
 		
 		List<String> commend = new java.util.ArrayList<String>();
 		commend.add(ffmpegPath);
@@ -631,25 +1483,60 @@ public class Client{
 		commend.add("44100");
 		commend.add("-s");
 		commend.add(converterResolution);
-		commend.add(filePlayPath);
 		
 		BufferedReader br=null;
 		
 		try {
-			ProcessBuilder builder = new ProcessBuilder();
-			builder.command(commend);
-			Process proc=builder.start();
+			long startTime=System.currentTimeMillis();
+			Process proc=null;
+			//与applyProfile使用同一个锁:启动期间切换了吞吐量配置时,要么在这里读到新的配置,
+			//要么applyProfile在进程登记之后才获取正在转换的进程,不会漏掉新启动的进程
+			synchronized(reniceLock){
+				ThroughputProfile profile=activeProfile;
+				if(null!=profile && profile.getThreads()>0){
+					commend.add("-threads");
+					commend.add(""+profile.getThreads());
+				}
+				commend.add(filePlayPath);
+				costKey=costKey(infos, converterQscale, profile);
+				
+				ProcessBuilder builder = new ProcessBuilder();
+				builder.command(commend);
+				proc=builder.start();
+				runningProcesses.put(fileId, proc);
+				runningDestPaths.put(fileId, filePlayPath);
+				if(null!=profile){
+					ProcessPriority.apply(proc, new File(ffmpegPath).getName(), filePlayPath, profile.getNice(), profile.getIonice());
+				}
+			}
+			runningStarted.put(fileId, startTime);
+			runningCosts.put(fileId, costModel.predict(costKey, sourceSeconds));
+			//启动之前已经被取消
+			if(cancelledFiles.contains(fileId)){
+				proc.destroy();
+			}
 			br=new BufferedReader(new InputStreamReader(proc.getErrorStream()));   
             String b;
             while((b=br.readLine())!=null){
             	//向终端打印转换信息，以使用户知道当前程序正在运行。
             	System.out.println(b);
             }
-            proc.waitFor();
+            int exitValue=proc.waitFor();
+            if(cancelledFiles.contains(fileId)){
+            	return false;
+            }
+            //只统计正常结束的转换耗时
+            if(exitValue==0){
+            	costModel.record(costKey, sourceSeconds, (System.currentTimeMillis()-startTime)/1000.0);
+            }
 		} catch (Exception e) {
 			e.printStackTrace();
 			return false;
 		}finally{   
+			runningProcesses.remove(fileId);
+			runningDestPaths.remove(fileId);
+			runningStarted.remove(fileId);
+			runningCosts.remove(fileId);
             if(br!=null){   
                 try {   
                     br.close();   
@@ -662,6 +1549,56 @@ public class Client{
 		return true;
 	}
 	
+	/**
+	 * 根据视频的分辨率获得转换使用的qscale
+	 */
+	private int qscaleFor(Map<String,String> infos){
+		int converterQscale=converterQscaleMiddle;
+		
+		//根据分辨率获得ascale
+		if(infos.containsKey("resolution") && infos.get("resolution").length()>0){
+			Matcher mat = resolutionPattern.matcher(infos.get("resolution"));  
+			if(mat.find()){
+				int tmpResolution=Integer.valueOf(mat.group(1));
+				
+				if(tmpResolution>=1440){
+					converterQscale=converterQscaleHigh;
+				}else if(tmpResolution<=848){
+					converterQscale=converterQscaleLow;
+				}
+			}
+		}
+		return converterQscale;
+	}
+	
+	/**
+	 * 转换耗时统计使用的转换类型:编码格式_源分辨率_目标分辨率_qscale_线程数
+	 */
+	private String costKey(Map<String,String> infos,int converterQscale,ThroughputProfile profile){
+		String codec=infos.get("codec");
+		String resolution=infos.get("resolution");
+		return (null==codec||"".equals(codec)?"unknown":codec)+"_"+(null==resolution||"".equals(resolution)?"unknown":resolution)
+				+"_"+converterResolution+"_q"+converterQscale+"_t"+(null==profile?0:profile.getThreads());
+	}
+	
+	/**
+	 * 将ffmpeg输出的视频时长(例如00:01:23.45)转换为秒数,无法识别时返回0
+	 */
+	private static double parseDuration(String duration){
+		if(null==duration){
+			return 0;
+		}
+		Matcher mat = durationPattern.matcher(duration.trim());
+		if(!mat.find()){
+			return 0;
+		}
+		return Integer.valueOf(mat.group(1))*3600+Integer.valueOf(mat.group(2))*60+Double.parseDouble(mat.group(3));
+	}
+	
+	private static String formatDate(Date date){
+		return new SimpleDateFormat("yyyy-MM-dd HH:mm:ss").format(date);
+	}
+	
 	/**
 	 * 对将要进行视频格式转换的文件进行支持情况判断
 	 */
@@ -0,0 +1,148 @@
+package com.njmd.zfms.converter;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.InputStream;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Properties;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * 根据以往的转换记录学习转换耗时,用于预测文件记录的转换完成时间.
+ * 按"编码格式_源分辨率_目标分辨率_qscale_线程数"分别统计每秒视频需要的转换秒数(平滑平均),
+ * 每次转换完成之后更新并保存到本地文件,程序重启之后继续使用.
+ */
+public class CostModel{
+	private static Log logger= LogFactory.getLog(CostModel.class);
+
+	//新的转换记录在平滑平均中所占的权重
+	private static final double ALPHA=0.2;
+	//没有任何转换记录时假设转换耗时与视频时长相同
+	private static final double DEFAULT_RATIO=1.0;
+	//所有转换记录的汇总,没有相同类型的转换记录时使用
+	private static final String ALL="all";
+
+	private File file=null;
+	//统计数据:{每秒视频的转换秒数,转换记录数,平均视频时长(秒)}
+	private Map<String,double[]> stats=new HashMap<String,double[]>();
+
+	public CostModel(File file){
+		this.file=file;
+	}
+
+	/**
+	 * 读取保存的统计数据,文件不存在时从零开始学习
+	 */
+	public synchronized void load(){
+		//上次保存时在删除统计文件之后、改名之前中断,临时文件中是完整的统计数据
+		File source=file.exists()?file:tmpFile();
+		if(!source.exists()){
+			return;
+		}
+		Properties props=new Properties();
+		try {
+			InputStream in=new FileInputStream(source);
+			props.load(in);
+			in.close();
+		} catch (Exception e) {
+			logger.error("系统提示:读取转换耗时统计文件["+file.getName()+"]失败,将重新进行统计!");
+			return;
+		}
+		for(String key:props.stringPropertyNames()){
+			String[] values=props.getProperty(key).split(",");
+			try {
+				stats.put(key, new double[]{Double.parseDouble(values[0]),Double.parseDouble(values[1]),Double.parseDouble(values[2])});
+			} catch (Exception e) {
+				logger.error("系统提示:转换耗时统计文件["+file.getName()+"]中的["+key+"]格式不正确,已忽略!");
+			}
+		}
+		logger.info("系统提示:已读取"+samples()+"条视频转换耗时记录!");
+	}
+
+	/**
+	 * 记录一次转换的耗时并保存
+	 * @param key 转换类型
+	 * @param sourceSeconds 视频时长(秒)
+	 * @param encodeSeconds 转换耗时(秒)
+	 */
+	public synchronized void record(String key,double sourceSeconds,double encodeSeconds){
+		if(sourceSeconds<=0 || encodeSeconds<=0){
+			return;
+		}
+		double ratio=encodeSeconds/sourceSeconds;
+		update(key, ratio, sourceSeconds);
+		update(ALL, ratio, sourceSeconds);
+		save();
+	}
+
+	/**
+	 * 预测转换耗时
+	 * @param key 转换类型
+	 * @param sourceSeconds 视频时长(秒),未知时按同类型的平均视频时长计算
+	 * @return 预测的转换耗时(秒)
+	 */
+	public synchronized double predict(String key,double sourceSeconds){
+		double[] stat=stats.get(key);
+		if(null==stat){
+			stat=stats.get(ALL);
+		}
+		if(null==stat){
+			return sourceSeconds>0?sourceSeconds*DEFAULT_RATIO:0;
+		}
+		return (sourceSeconds>0?sourceSeconds:stat[2])*stat[0];
+	}
+
+	/**
+	 * 已经统计的转换记录数
+	 */
+	public synchronized int samples(){
+		double[] stat=stats.get(ALL);
+		return null==stat?0:(int)stat[1];
+	}
+
+	private File tmpFile(){
+		return new File(file.getPath()+".tmp");
+	}
+
+	private void update(String key,double ratio,double sourceSeconds){
+		double[] stat=stats.get(key);
+		if(null==stat){
+			stats.put(key, new double[]{ratio,1,sourceSeconds});
+		}else{
+			stat[0]=ALPHA*ratio+(1-ALPHA)*stat[0];
+			stat[1]++;
+			stat[2]=ALPHA*sourceSeconds+(1-ALPHA)*stat[2];
+		}
+	}
+
+	private void save(){
+		Properties props=new Properties();
+		for(Map.Entry<String,double[]> entry:stats.entrySet()){
+			double[] stat=entry.getValue();
+			props.setProperty(entry.getKey(), stat[0]+","+(long)stat[1]+","+stat[2]);
+		}
+		//先写入临时文件再替换,避免写入过程中断电或者程序退出导致统计文件损坏
+		File tmpFile=tmpFile();
+		try {
+			FileOutputStream out=new FileOutputStream(tmpFile);
+			props.store(out, "encode seconds per source second,samples,average source seconds");
+			out.flush();
+			out.getFD().sync();
+			out.close();
+		} catch (Exception e) {
+			logger.error("系统提示:保存转换耗时统计文件["+file.getName()+"]失败!");
+			return;
+		}
+		//Windows下不能直接覆盖已经存在的文件,删除之后再改名,中途中断时load()会读取临时文件
+		if(!tmpFile.renameTo(file)){
+			file.delete();
+			if(!tmpFile.renameTo(file)){
+				logger.error("系统提示:保存转换耗时统计文件["+file.getName()+"]失败!");
+			}
+		}
+	}
+}
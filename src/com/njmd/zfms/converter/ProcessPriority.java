@@ -0,0 +1,177 @@
+package com.njmd.zfms.converter;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * 调整ffmpeg子进程的CPU/IO优先级,可以对正在运行的进程生效.
+ * Linux下对进程的每个线程执行renice和ionice,Windows下使用wmic修改进程的优先级类别,不调整IO优先级.
+ * JDK9之前的Windows版本无法获取进程号,此时按进程名和命令行中的输出文件路径查找ffmpeg进程.
+ * 非root用户运行时只能降低优先级,不能再提高.
+ */
+public class ProcessPriority{
+	private static Log logger= LogFactory.getLog(ProcessPriority.class);
+
+	private static final boolean isWindows=System.getProperty("os.name","").toLowerCase().startsWith("windows");
+
+	//Windows进程优先级类别
+	private static final int WINDOWS_IDLE=64;
+	private static final int WINDOWS_BELOW_NORMAL=16384;
+	private static final int WINDOWS_NORMAL=32;
+	private static final int WINDOWS_ABOVE_NORMAL=32768;
+
+	/**
+	 * 调整进程的优先级
+	 * @param proc
+	 * @param imageName 进程的可执行文件名,例如ffmpeg.exe,无法获取进程号时用于查找进程
+	 * @param commandLine 进程命令行中唯一的内容(输出文件路径),无法获取进程号时用于查找进程
+	 * @param nice nice值(-20~19),数值越大优先级越低
+	 * @param ionice IO优先级(0~7),数值越大优先级越低,为-1时不调整
+	 */
+	public static void apply(Process proc,String imageName,String commandLine,int nice,int ionice){
+		Long pid=getPid(proc);
+
+		if(isWindows){
+			if(null==pid && (null==commandLine || "".equals(commandLine))){
+				logger.warn("系统提示:无法获取ffmpeg进程的进程号和输出文件,因此不调整进程优先级!");
+				return;
+			}
+			String where=null!=pid?"ProcessId="+pid
+					:"name='"+escapeWql(imageName)+"' and commandline like '%"+escapeWql(escapeLike(commandLine))+"%'";
+			exec(Arrays.asList("wmic","process","where",where,"CALL","setpriority",String.valueOf(windowsPriority(nice))));
+			return;
+		}
+
+		if(null==pid){
+			logger.warn("系统提示:无法获取ffmpeg进程的进程号,因此不调整进程优先级!");
+			return;
+		}
+
+		//Linux下nice值和IO优先级都是按线程设置的,需要对已经创建的每个线程分别调整
+		String[] tids=new File("/proc/"+pid+"/task").list();
+		if(null==tids){
+			tids=new String[]{String.valueOf(pid)};
+		}
+		for(String tid:tids){
+			exec(Arrays.asList("renice","-n",String.valueOf(nice),"-p",tid));
+			if(ionice>=0){
+				exec(Arrays.asList("ionice","-c","2","-n",String.valueOf(ionice),"-p",tid));
+			}
+		}
+	}
+
+	/**
+	 * 按指定的优先级启动进程,用于运行时间很短、来不及在启动之后再调整优先级的进程(例如读取视频信息).
+	 * Linux下通过nice和ionice启动,调整失败时仍然启动进程;Windows下启动之后再调整优先级类别.
+	 * @param commend 启动进程的命令
+	 * @param commandLine 进程命令行中唯一的内容,Windows下无法获取进程号时用于查找进程
+	 * @param nice nice值(-20~19),数值越大优先级越低
+	 * @param ionice IO优先级(0~7),数值越大优先级越低,为-1时不调整
+	 */
+	public static Process start(List<String> commend,String commandLine,int nice,int ionice) throws IOException{
+		ProcessBuilder builder = new ProcessBuilder();
+		if(isWindows){
+			builder.command(commend);
+			Process proc=builder.start();
+			apply(proc, new File(commend.get(0)).getName(), commandLine, nice, ionice);
+			return proc;
+		}
+
+		List<String> command=new ArrayList<String>();
+		command.addAll(Arrays.asList("nice","-n",String.valueOf(nice)));
+		if(ionice>=0){
+			command.addAll(Arrays.asList("ionice","-t","-c","2","-n",String.valueOf(ionice)));
+		}
+		command.addAll(commend);
+		builder.command(command);
+		return builder.start();
+	}
+
+	/**
+	 * 把nice值对应到Windows的进程优先级类别
+	 */
+	private static int windowsPriority(int nice){
+		if(nice<0){
+			return WINDOWS_ABOVE_NORMAL;
+		}else if(nice==0){
+			return WINDOWS_NORMAL;
+		}else if(nice<10){
+			return WINDOWS_BELOW_NORMAL;
+		}
+		return WINDOWS_IDLE;
+	}
+
+	/**
+	 * 转义WQL的LIKE通配符
+	 */
+	private static String escapeLike(String str){
+		return str.replace("[", "[[]").replace("%", "[%]").replace("_", "[_]");
+	}
+
+	/**
+	 * 转义WQL字符串中的反斜杠和单引号
+	 */
+	private static String escapeWql(String str){
+		return str.replace("\\", "\\\\").replace("'", "\\'");
+	}
+
+	/**
+	 * 获取进程号,JDK9以上使用Process.pid(),之前的版本只能从UNIXProcess的pid字段获取
+	 */
+	private static Long getPid(Process proc){
+		try {
+			Method method=Process.class.getMethod("pid");
+			return (Long) method.invoke(proc);
+		} catch (Exception e) {
+		}
+
+		try {
+			Field field=proc.getClass().getDeclaredField("pid");
+			field.setAccessible(true);
+			return Long.valueOf(field.getInt(proc));
+		} catch (Exception e) {
+		}
+		return null;
+	}
+
+	/**
+	 * 执行调整优先级的命令,失败时只记录日志
+	 */
+	private static void exec(List<String> commend){
+		BufferedReader br=null;
+		try {
+			ProcessBuilder builder = new ProcessBuilder();
+			builder.command(commend);
+			builder.redirectErrorStream(true);
+			Process proc=builder.start();
+			br=new BufferedReader(new InputStreamReader(proc.getInputStream()));
+			StringBuffer sb=new StringBuffer();
+			String b=null;
+			while((b=br.readLine())!=null){
+				sb.append(b).append("\n");
+			}
+			if(proc.waitFor()!=0){
+				logger.warn("系统提示:调整进程优先级"+commend+"失败:"+sb.toString().trim());
+			}
+		} catch (Exception e) {
+			logger.warn("系统提示:调整进程优先级"+commend+"失败:"+e.getMessage());
+		}finally{
+			if(br!=null){
+				try {
+					br.close();
+				} catch (Exception e) {
+				}
+			}
+		}
+	}
+}
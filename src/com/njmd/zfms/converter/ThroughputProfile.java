@@ -0,0 +1,66 @@
+package com.njmd.zfms.converter;
+
+/**
+ * 按时间段生效的吞吐量配置,在配置文件中以profile.&lt;名称&gt;.*的形式设置.
+ * 每个配置从start时间开始生效,直到下一个配置的start时间为止.
+ */
+public class ThroughputProfile{
+
+	//配置名称
+	private String name;
+	//开始生效的时间(从0点开始的分钟数)
+	private int start;
+	//同时进行视频转换的工作线程数
+	private int workers;
+	//ffmpeg使用的线程数,为0时由ffmpeg自行决定
+	private int threads;
+	//ffmpeg进程的nice值(-20~19),数值越大优先级越低
+	private int nice;
+	//ffmpeg进程的IO优先级(0~7),数值越大优先级越低,为-1时不调整
+	private int ionice;
+
+	public ThroughputProfile(String name,int start,int workers,int threads,int nice,int ionice){
+		this.name=name;
+		this.start=start;
+		this.workers=workers;
+		this.threads=threads;
+		this.nice=nice;
+		this.ionice=ionice;
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	public int getStart() {
+		return start;
+	}
+
+	/**
+	 * 开始生效的时间,格式为HH:mm
+	 */
+	public String getStartTime() {
+		return String.format("%02d:%02d", start/60, start%60);
+	}
+
+	public int getWorkers() {
+		return workers;
+	}
+
+	public int getThreads() {
+		return threads;
+	}
+
+	public int getNice() {
+		return nice;
+	}
+
+	public int getIonice() {
+		return ionice;
+	}
+
+	@Override
+	public String toString() {
+		return name+"[start="+getStartTime()+",workers="+workers+",threads="+threads+",nice="+nice+",ionice="+ionice+"]";
+	}
+}